@@ -0,0 +1,765 @@
+package net.gmbx.w2v;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the exact top-k cosine neighbour graph of every term in a
+ * {@link VectorModel}.
+ * <p>
+ * The vocabulary is cut into blocks of rows and only the upper triangle of
+ * the block matrix is visited; every dot product is offered to both of its
+ * endpoints. Row blocks are processed in batches: each worker claims column
+ * blocks in turn and updates their neighbour lists directly, while the batch
+ * rows collect their candidates in per-worker lists that are merged when the
+ * batch completes, so no locking is needed. Between batches the partial
+ * graph can be written to a checkpoint from which an interrupted run
+ * resumes.
+ * <p>
+ * The binary output is little-endian (as are word2vec binaries): the magic
+ * {@code KNNG}, the format version, the vocabulary size and k, followed for
+ * every term by k neighbour ids and then k cosine similarities, ordered from
+ * most to least similar.
+ * <p>
+ * As in {@link Distance}, NaN similarities are ignored. A term whose vector
+ * could not be normalised (e.g. all zeros) therefore gets no neighbours and
+ * appears in no other term's list; unfilled slots are written as id -1 with
+ * a NaN score and are left out of the TSV export.
+ */
+public class NearestNeighborGraph
+{
+    private static final int    DEFAULT_NEIGHBORHOOD    = 40;
+    private static final int    DEFAULT_BLOCK_SIZE      = 256;
+    private static final int    BATCH_BLOCKS            = 8;
+    private static final long   DEFAULT_CHECKPOINT_SECS = 600;
+
+    private static final int    GRAPH_MAGIC             = 0x474e4e4b; // KNNG
+    private static final int    CHECKPOINT_MAGIC        = 0x504b434b; // KCKP
+    private static final int    FORMAT_VERSION          = 1;
+    private static final int    IO_BUFFER_SIZE          = 1 << 20;
+    private static final int    FINGERPRINT_VECTORS     = 64;
+
+    private static final String USAGE                   =
+            "Usage: path/to/word2vec_model path/to/output [N-neighbors]"
+                    + " [-tsv] [-threads N] [-block N] [-checkpoint secs]";
+
+    private final VectorModel   model;
+    private final int           k;
+    private final int           blockSize;
+    private final int           threads;
+
+    private NeighborHeap        heap;
+
+    public NearestNeighborGraph(VectorModel model, int k, int blockSize,
+            int threads)
+    {
+        if (model == null)
+        {
+            throw new RuntimeException("model == null");
+        }
+        else if (k < 1 || k >= model.getVocabSize())
+        {
+            throw new RuntimeException("k must be in [1, vocabSize)");
+        }
+        else if ((long) model.getVocabSize() * k > Integer.MAX_VALUE)
+        {
+            throw new RuntimeException("vocabSize * k > Integer.MAX_VALUE");
+        }
+        else if (blockSize < 1)
+        {
+            throw new RuntimeException("blockSize < 1");
+        }
+        else if (threads < 1)
+        {
+            throw new RuntimeException("threads < 1");
+        }
+        this.model = model;
+        this.k = k;
+        this.blockSize = blockSize;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 2)
+        {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        int N = DEFAULT_NEIGHBORHOOD;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int blockSize = DEFAULT_BLOCK_SIZE;
+        long checkpointSecs = DEFAULT_CHECKPOINT_SECS;
+        boolean tsv = false;
+        try
+        {
+            for (int i = 2; i < args.length; i++)
+            {
+                if ("-tsv".equals(args[i]))
+                {
+                    tsv = true;
+                }
+                else if ("-threads".equals(args[i]))
+                {
+                    threads = Integer.parseInt(args[++i]);
+                }
+                else if ("-block".equals(args[i]))
+                {
+                    blockSize = Integer.parseInt(args[++i]);
+                }
+                else if ("-checkpoint".equals(args[i]))
+                {
+                    checkpointSecs = Long.parseLong(args[++i]);
+                }
+                else
+                {
+                    N = Integer.parseInt(args[i]);
+                }
+            }
+        }
+        catch (RuntimeException e)
+        {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        if (N < 1 || threads < 1 || blockSize < 1 || checkpointSecs < 0)
+        {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        long t0 = System.currentTimeMillis();
+        VectorModel model;
+        if (args[0].endsWith(".bin"))
+        {
+            model = Word2VecUtils.loadGoogleBinary(args[0], Charset
+                .defaultCharset(), true);
+        }
+        else
+        {
+            model = Word2VecUtils.loadVectorModelFromText(args[0], true);
+        }
+        long t1 = System.currentTimeMillis();
+        System.out.println(formatTime(t1 - t0) + " to load "
+                           + model.getVocabSize() + " "
+                           + model.getVectorSize()
+                           + "-dimensional word vectors");
+        if (N >= model.getVocabSize())
+        {
+            System.err.println("N-neighbors must be less than the vocabulary"
+                               + " size of " + model.getVocabSize());
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        NearestNeighborGraph graph =
+                new NearestNeighborGraph(model, N, blockSize, threads);
+        File output = new File(args[1]);
+        // a checkpoint interval of 0 turns checkpointing off
+        File checkpoint =
+                checkpointSecs > 0 ? new File(args[1] + ".ckpt") : null;
+        graph.build(checkpoint, checkpointSecs * 1000, true);
+
+        long t2 = System.currentTimeMillis();
+        System.out.println(formatTime(t2 - t1) + " to build the "
+                           + N + "-nearest neighbor graph");
+
+        graph.writeBinary(output);
+        if (tsv)
+        {
+            graph.writeText(new File(args[1] + ".tsv"));
+        }
+        if (checkpoint != null && checkpoint.exists() && !checkpoint.delete())
+        {
+            System.err.println("Failed to delete " + checkpoint);
+        }
+    }
+
+    /**
+     * Computes the neighbour lists of every term, resuming from
+     * {@code checkpoint} when it exists and rewriting it whenever more than
+     * {@code checkpointMillis} have passed since the last write. A null
+     * checkpoint disables both.
+     */
+    public void build(File checkpoint, long checkpointMillis,
+                      boolean printProgress)
+        throws IOException
+    {
+        int vocabSize = model.getVocabSize();
+        int blocks = (vocabSize + blockSize - 1) / blockSize;
+
+        NeighborHeap neighbors = new NeighborHeap(0, vocabSize, k);
+        int firstBlock = 0;
+        if (checkpoint != null && checkpoint.exists())
+        {
+            firstBlock = readCheckpoint(neighbors, checkpoint);
+            if (printProgress)
+            {
+                System.out.println("Resuming at row block " + firstBlock
+                                   + " of " + blocks);
+            }
+        }
+
+        int batchRows = Math.min(BATCH_BLOCKS * blockSize, vocabSize);
+        NeighborHeap[] workers = new NeighborHeap[threads];
+        for (int w = 0; w < threads; w++)
+        {
+            workers[w] = new NeighborHeap(0, batchRows, k);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try
+        {
+            long lastCheckpoint = System.currentTimeMillis();
+            for (int batch = firstBlock; batch < blocks; batch += BATCH_BLOCKS)
+            {
+                int batchEnd = Math.min(batch + BATCH_BLOCKS, blocks);
+                runBatch(pool, neighbors, workers, batch, batchEnd, blocks);
+
+                if (printProgress)
+                {
+                    System.out.print(".");
+                }
+                long now = System.currentTimeMillis();
+                if (checkpoint != null && batchEnd < blocks
+                    && now - lastCheckpoint >= checkpointMillis)
+                {
+                    writeCheckpoint(neighbors, batchEnd, checkpoint);
+                    lastCheckpoint = System.currentTimeMillis();
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+        if (printProgress) System.out.println();
+        this.heap = neighbors;
+    }
+
+    private void runBatch(ExecutorService pool, final NeighborHeap neighbors,
+                          NeighborHeap[] workers, final int batchStart,
+                          final int batchEnd, final int blocks)
+        throws IOException
+    {
+        int rowStart = batchStart * blockSize;
+        int rowEnd = Math.min(batchEnd * blockSize, model.getVocabSize());
+        final AtomicInteger nextColumn = new AtomicInteger(batchStart);
+
+        List<Future<Void>> pending = new ArrayList<Future<Void>>();
+        for (final NeighborHeap rows : workers)
+        {
+            rows.reset(rowStart, rowEnd - rowStart);
+            pending.add(pool.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    int colBlock;
+                    while ((colBlock = nextColumn.getAndIncrement()) < blocks)
+                    {
+                        int last = Math.min(batchEnd - 1, colBlock);
+                        for (int row = batchStart; row <= last; row++)
+                        {
+                            scoreTile(row, colBlock, rows, neighbors);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> f : pending)
+        {
+            try
+            {
+                f.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while building graph", e);
+            }
+            catch (ExecutionException e)
+            {
+                throw new RuntimeException("Failed to score tile", e.getCause());
+            }
+        }
+        for (NeighborHeap rows : workers)
+        {
+            neighbors.mergeFrom(rows);
+        }
+    }
+
+    /**
+     * Scores every pair of the tile (rowBlock, colBlock), offering each
+     * similarity to the row term through {@code rows} and to the column term
+     * through {@code cols}. On the diagonal only pairs with i < j are scored.
+     */
+    private void scoreTile(int rowBlock, int colBlock, NeighborHeap rows,
+                           NeighborHeap cols)
+    {
+        int vocabSize = model.getVocabSize();
+        int iEnd = Math.min((rowBlock + 1) * blockSize, vocabSize);
+        int jStart = colBlock * blockSize;
+        int jEnd = Math.min(jStart + blockSize, vocabSize);
+        int d = model.getVectorSize();
+
+        for (int i = rowBlock * blockSize; i < iEnd; i++)
+        {
+            float[] u = model.getVector(i);
+            int j = (rowBlock == colBlock) ? i + 1 : jStart;
+
+            // score four columns per pass so each u[x] is loaded once
+            for (; j + 3 < jEnd; j += 4)
+            {
+                float[] v0 = model.getVector(j);
+                float[] v1 = model.getVector(j + 1);
+                float[] v2 = model.getVector(j + 2);
+                float[] v3 = model.getVector(j + 3);
+                float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+                for (int x = 0; x < d; x++)
+                {
+                    float ux = u[x];
+                    s0 += ux * v0[x];
+                    s1 += ux * v1[x];
+                    s2 += ux * v2[x];
+                    s3 += ux * v3[x];
+                }
+                rows.offer(i, j, s0);
+                rows.offer(i, j + 1, s1);
+                rows.offer(i, j + 2, s2);
+                rows.offer(i, j + 3, s3);
+                cols.offer(j, i, s0);
+                cols.offer(j + 1, i, s1);
+                cols.offer(j + 2, i, s2);
+                cols.offer(j + 3, i, s3);
+            }
+            for (; j < jEnd; j++)
+            {
+                float[] v = model.getVector(j);
+                float s = 0f;
+                for (int x = 0; x < d; x++)
+                {
+                    s += u[x] * v[x];
+                }
+                rows.offer(i, j, s);
+                cols.offer(j, i, s);
+            }
+        }
+    }
+
+    public void writeBinary(File file) throws IOException
+    {
+        sortedHeap();
+        FileChannel out = new FileOutputStream(file).getChannel();
+        try
+        {
+            ByteBuffer buf = newBuffer();
+            buf.putInt(GRAPH_MAGIC).putInt(FORMAT_VERSION);
+            buf.putInt(model.getVocabSize()).putInt(k);
+            for (int i = 0; i < model.getVocabSize(); i++)
+            {
+                int base = i * k;
+                int size = heap.sizes[i];
+                for (int n = 0; n < k; n++)
+                {
+                    ensureCapacity(out, buf, 4);
+                    buf.putInt(n < size ? heap.ids[base + n] : -1);
+                }
+                for (int n = 0; n < k; n++)
+                {
+                    ensureCapacity(out, buf, 4);
+                    buf.putFloat(n < size ? heap.scores[base + n] : Float.NaN);
+                }
+            }
+            drain(out, buf);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    public void writeText(File file) throws IOException
+    {
+        sortedHeap();
+        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(file), StandardCharsets.UTF_8), IO_BUFFER_SIZE);
+        try
+        {
+            for (int i = 0; i < model.getVocabSize(); i++)
+            {
+                String term = model.getTerm(i);
+                int base = i * k;
+                for (int n = 0; n < heap.sizes[i]; n++)
+                {
+                    bw.write(term);
+                    bw.write('\t');
+                    bw.write(model.getTerm(heap.ids[base + n]));
+                    bw.write('\t');
+                    bw.write(Float.toString(heap.scores[base + n]));
+                    bw.write('\n');
+                }
+            }
+        }
+        finally
+        {
+            bw.close();
+        }
+    }
+
+    private void sortedHeap()
+    {
+        if (heap == null)
+        {
+            throw new RuntimeException("build() has not been run");
+        }
+        heap.sortDescending();
+    }
+
+    private void writeCheckpoint(NeighborHeap neighbors, int nextBlock,
+                                 File checkpoint)
+        throws IOException
+    {
+        // write beside the old checkpoint and swap, so a crash mid-write
+        // never leaves a truncated file behind
+        File tmp = new File(checkpoint.getPath() + ".tmp");
+        FileChannel out = new FileOutputStream(tmp).getChannel();
+        try
+        {
+            ByteBuffer buf = newBuffer();
+            buf.putInt(CHECKPOINT_MAGIC).putInt(FORMAT_VERSION);
+            buf.putInt(model.getVocabSize()).putInt(k);
+            buf.putInt(blockSize).putLong(fingerprint()).putInt(nextBlock);
+            for (int i = 0; i < neighbors.sizes.length; i++)
+            {
+                ensureCapacity(out, buf, 4);
+                buf.putInt(neighbors.sizes[i]);
+            }
+            for (int i = 0; i < neighbors.ids.length; i++)
+            {
+                ensureCapacity(out, buf, 4);
+                buf.putInt(neighbors.ids[i]);
+            }
+            for (int i = 0; i < neighbors.scores.length; i++)
+            {
+                ensureCapacity(out, buf, 4);
+                buf.putFloat(neighbors.scores[i]);
+            }
+            drain(out, buf);
+            out.force(true);
+        }
+        finally
+        {
+            out.close();
+        }
+        Files.move(tmp.toPath(), checkpoint.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private int readCheckpoint(NeighborHeap neighbors, File checkpoint)
+        throws IOException
+    {
+        FileChannel in = new FileInputStream(checkpoint).getChannel();
+        try
+        {
+            ByteBuffer buf = newBuffer();
+            buf.limit(0);
+            fill(in, buf, 32);
+            if (buf.getInt() != CHECKPOINT_MAGIC
+                || buf.getInt() != FORMAT_VERSION)
+            {
+                throw new IOException("Not a graph checkpoint: " + checkpoint);
+            }
+            if (buf.getInt() != model.getVocabSize() || buf.getInt() != k
+                || buf.getInt() != blockSize)
+            {
+                throw new IOException("Checkpoint " + checkpoint
+                                      + " was written with other settings");
+            }
+            if (buf.getLong() != fingerprint())
+            {
+                throw new IOException("Checkpoint " + checkpoint
+                                      + " was written for another model");
+            }
+            int nextBlock = buf.getInt();
+            int blocks = (model.getVocabSize() + blockSize - 1) / blockSize;
+            if (nextBlock < 0 || nextBlock > blocks)
+            {
+                throw new IOException("Checkpoint " + checkpoint
+                                      + " has invalid block " + nextBlock);
+            }
+            for (int i = 0; i < neighbors.sizes.length; i++)
+            {
+                fill(in, buf, 4);
+                neighbors.sizes[i] = buf.getInt();
+                if (neighbors.sizes[i] < 0 || neighbors.sizes[i] > k)
+                {
+                    throw new IOException("Checkpoint " + checkpoint
+                                          + " has invalid size for row " + i);
+                }
+            }
+            for (int i = 0; i < neighbors.ids.length; i++)
+            {
+                fill(in, buf, 4);
+                int id = buf.getInt();
+                neighbors.ids[i] = id;
+                if (i % k < neighbors.sizes[i / k]
+                    && (id < 0 || id >= model.getVocabSize()))
+                {
+                    throw new IOException("Checkpoint " + checkpoint
+                                          + " has invalid id for row " + i / k);
+                }
+            }
+            for (int i = 0; i < neighbors.scores.length; i++)
+            {
+                fill(in, buf, 4);
+                neighbors.scores[i] = buf.getFloat();
+            }
+            boolean trailing = buf.hasRemaining();
+            buf.clear();
+            if (trailing || in.read(buf) != -1)
+            {
+                throw new IOException("Checkpoint " + checkpoint
+                                      + " has trailing data");
+            }
+            return nextBlock;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Cheap identity of the model for checkpoints: every term plus the
+     * vectors of a few evenly spaced rows, so a retrained model with the
+     * same vocabulary is told apart without hashing every vector.
+     */
+    private long fingerprint()
+    {
+        int vocabSize = model.getVocabSize();
+        long h = 1125899906842597L;
+        h = 31 * h + model.getVectorSize();
+        for (int i = 0; i < vocabSize; i++)
+        {
+            h = 31 * h + model.getTerm(i).hashCode();
+        }
+        int step = Math.max(1, vocabSize / FINGERPRINT_VECTORS);
+        for (int i = 0; i < vocabSize; i += step)
+        {
+            float[] v = model.getVector(i);
+            for (int x = 0; x < v.length; x++)
+            {
+                h = 31 * h + Float.floatToIntBits(v[x]);
+            }
+        }
+        return h;
+    }
+
+    private static ByteBuffer newBuffer()
+    {
+        return ByteBuffer.allocate(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void ensureCapacity(FileChannel out, ByteBuffer buf,
+                                       int bytes)
+        throws IOException
+    {
+        if (buf.remaining() < bytes)
+        {
+            drain(out, buf);
+        }
+    }
+
+    private static void drain(FileChannel out, ByteBuffer buf)
+        throws IOException
+    {
+        buf.flip();
+        while (buf.hasRemaining())
+        {
+            out.write(buf);
+        }
+        buf.clear();
+    }
+
+    private static void fill(FileChannel in, ByteBuffer buf, int bytes)
+        throws IOException
+    {
+        if (buf.remaining() >= bytes)
+        {
+            return;
+        }
+        buf.compact();
+        while (buf.position() < bytes)
+        {
+            if (in.read(buf) < 0)
+            {
+                throw new IOException("Unexpected end of checkpoint");
+            }
+        }
+        buf.flip();
+    }
+
+    private static String formatTime(long millis)
+    {
+        return String.format("%d.%03ds", millis / 1000, millis % 1000);
+    }
+
+    /**
+     * Bounded min-heaps of (id, score) for a contiguous range of rows, kept
+     * in flat arrays. The root of each row's heap is its weakest neighbour,
+     * so most offers are rejected by a single comparison. Neighbours are
+     * ranked by score and then by lower id, which keeps the result
+     * independent of the order in which candidates arrive.
+     */
+    private static class NeighborHeap
+    {
+        private boolean       sorted;
+        private int           firstRow;
+        private int           rows;
+        private final int     k;
+        private final int[]   sizes;
+        private final int[]   ids;
+        private final float[] scores;
+
+        NeighborHeap(int firstRow, int rows, int k)
+        {
+            this.firstRow = firstRow;
+            this.rows = rows;
+            this.k = k;
+            this.sizes = new int[rows];
+            this.ids = new int[rows * k];
+            this.scores = new float[rows * k];
+        }
+
+        void offer(int row, int id, float score)
+        {
+            // NaN would sift to the root and break the heap ordering
+            if (score != score) return;
+            int r = row - firstRow;
+            int base = r * k;
+            int size = sizes[r];
+            if (size < k)
+            {
+                // sift up
+                int c = size;
+                while (c > 0)
+                {
+                    int p = (c - 1) >>> 1;
+                    if (!weaker(id, score, ids[base + p], scores[base + p])) break;
+                    scores[base + c] = scores[base + p];
+                    ids[base + c] = ids[base + p];
+                    c = p;
+                }
+                scores[base + c] = score;
+                ids[base + c] = id;
+                sizes[r] = size + 1;
+            }
+            else if (weaker(ids[base], scores[base], id, score))
+            {
+                siftDown(base, k, id, score);
+            }
+        }
+
+        private void siftDown(int base, int size, int id, float score)
+        {
+            int p = 0;
+            int c = 1;
+            while (c < size)
+            {
+                if (c + 1 < size
+                    && weaker(ids[base + c + 1], scores[base + c + 1],
+                              ids[base + c], scores[base + c]))
+                {
+                    c++;
+                }
+                if (!weaker(ids[base + c], scores[base + c], id, score)) break;
+                scores[base + p] = scores[base + c];
+                ids[base + p] = ids[base + c];
+                p = c;
+                c = 2 * p + 1;
+            }
+            scores[base + p] = score;
+            ids[base + p] = id;
+        }
+
+        /**
+         * Empties the heaps and reuses them for {@code rows} rows starting
+         * at {@code firstRow}, within the capacity allocated up front.
+         */
+        void reset(int firstRow, int rows)
+        {
+            Arrays.fill(sizes, 0, rows, 0);
+            this.firstRow = firstRow;
+            this.rows = rows;
+            this.sorted = false;
+        }
+
+        private static boolean weaker(int id, float score, int otherId,
+                                      float otherScore)
+        {
+            return score < otherScore
+                   || (score == otherScore && id > otherId);
+        }
+
+        void mergeFrom(NeighborHeap other)
+        {
+            for (int r = 0; r < other.rows; r++)
+            {
+                int base = r * other.k;
+                for (int n = 0; n < other.sizes[r]; n++)
+                {
+                    offer(other.firstRow + r, other.ids[base + n],
+                          other.scores[base + n]);
+                }
+            }
+        }
+
+        /**
+         * Heap-sorts every row in place so that it runs from most to least
+         * similar. The rows are no longer valid heaps afterwards.
+         */
+        void sortDescending()
+        {
+            if (sorted) return;
+            for (int r = 0; r < rows; r++)
+            {
+                int base = r * k;
+                for (int size = sizes[r]; size > 1; size--)
+                {
+                    // move the current minimum behind the shrinking heap
+                    int last = size - 1;
+                    float score = scores[base + last];
+                    int id = ids[base + last];
+                    scores[base + last] = scores[base];
+                    ids[base + last] = ids[base];
+                    siftDown(base, last, id, score);
+                }
+            }
+            sorted = true;
+        }
+    }
+}
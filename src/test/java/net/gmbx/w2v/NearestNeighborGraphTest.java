@@ -0,0 +1,217 @@
+package net.gmbx.w2v;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class NearestNeighborGraphTest
+{
+    private static final int  VOCAB_SIZE  = 203;
+    private static final int  VECTOR_SIZE = 12;
+    private static final int  K           = 10;
+    private static final int  ZERO_ROW    = 5;
+
+    @Rule
+    public TemporaryFolder    tmp         = new TemporaryFolder();
+
+    @Test
+    public void buildMatchesBruteForce() throws IOException
+    {
+        VectorModel model = newModel(1L);
+        int[] blockSizes = { 1, 7, 64, 256 };
+        int[] threadCounts = { 1, 3, 8 };
+        for (int blockSize : blockSizes)
+        {
+            for (int threads : threadCounts)
+            {
+                NearestNeighborGraph graph =
+                        new NearestNeighborGraph(model, K, blockSize, threads);
+                graph.build(null, 0, false);
+                File out = tmp.newFile();
+                graph.writeBinary(out);
+                assertMatchesBruteForce(model, out, "block " + blockSize
+                                                    + ", threads " + threads);
+            }
+        }
+    }
+
+    @Test
+    public void resumeFromCheckpointMatchesFreshBuild() throws IOException
+    {
+        VectorModel model = newModel(1L);
+        File checkpoint = new File(tmp.getRoot(), "graph.ckpt");
+
+        // checkpoint after every batch; the last one is left behind
+        NearestNeighborGraph fresh = new NearestNeighborGraph(model, K, 7, 4);
+        fresh.build(checkpoint, 0, false);
+        assertTrue(checkpoint.exists());
+        File expected = tmp.newFile();
+        fresh.writeBinary(expected);
+
+        NearestNeighborGraph resumed = new NearestNeighborGraph(model, K, 7, 2);
+        resumed.build(checkpoint, Long.MAX_VALUE, false);
+        File actual = tmp.newFile();
+        resumed.writeBinary(actual);
+
+        assertArrayEquals(Files.readAllBytes(expected.toPath()),
+                          Files.readAllBytes(actual.toPath()));
+        assertMatchesBruteForce(model, actual, "resumed");
+    }
+
+    @Test(expected = IOException.class)
+    public void checkpointOfAnotherModelIsRejected() throws IOException
+    {
+        File checkpoint = new File(tmp.getRoot(), "graph.ckpt");
+        new NearestNeighborGraph(newModel(1L), K, 7, 2).build(checkpoint, 0,
+                                                               false);
+        assertTrue(checkpoint.exists());
+        new NearestNeighborGraph(newModel(2L), K, 7, 2).build(checkpoint, 0,
+                                                               false);
+    }
+
+    @Test
+    public void vocabSizeTimesKOverflowIsRejected()
+    {
+        int vocabSize = 46342;
+        String[] vocab = new String[vocabSize];
+        float[][] vectors = new float[vocabSize][1];
+        for (int i = 0; i < vocabSize; i++)
+        {
+            vocab[i] = "w" + i;
+        }
+        VectorModel model = new VectorModel(vocabSize, 1, vocab, vectors);
+        try
+        {
+            new NearestNeighborGraph(model, 46341, 256, 1);
+            fail("vocabSize * k overflow was accepted");
+        }
+        catch (RuntimeException e)
+        {
+            assertEquals("vocabSize * k > Integer.MAX_VALUE", e.getMessage());
+        }
+    }
+
+    /**
+     * Random unit vectors with one zero vector (normalised to NaNs) and a
+     * run of duplicates, so that ties have to be broken by id.
+     */
+    private static VectorModel newModel(long seed)
+    {
+        Random random = new Random(seed);
+        String[] vocab = new String[VOCAB_SIZE];
+        float[][] vectors = new float[VOCAB_SIZE][];
+        for (int i = 0; i < VOCAB_SIZE; i++)
+        {
+            vocab[i] = "w" + i;
+            float[] v = new float[VECTOR_SIZE];
+            if (i > 9 && i < 15)
+            {
+                v = vectors[9].clone();
+            }
+            else if (i != ZERO_ROW)
+            {
+                for (int j = 0; j < VECTOR_SIZE; j++)
+                {
+                    v[j] = (float) random.nextGaussian();
+                }
+            }
+            vectors[i] = Word2VecUtils.unitLength(v);
+        }
+        return new VectorModel(VOCAB_SIZE, VECTOR_SIZE, vocab, vectors);
+    }
+
+    private static void assertMatchesBruteForce(VectorModel model, File graph,
+                                                String label)
+        throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(graph.toPath()))
+            .order(ByteOrder.LITTLE_ENDIAN);
+        buf.getInt();
+        buf.getInt();
+        assertEquals(label, VOCAB_SIZE, buf.getInt());
+        assertEquals(label, K, buf.getInt());
+
+        for (int i = 0; i < VOCAB_SIZE; i++)
+        {
+            int[] ids = new int[K];
+            float[] scores = new float[K];
+            for (int n = 0; n < K; n++)
+            {
+                ids[n] = buf.getInt();
+            }
+            for (int n = 0; n < K; n++)
+            {
+                scores[n] = buf.getFloat();
+            }
+
+            List<Integer> expected = bruteForce(model, i);
+            for (int n = 0; n < K; n++)
+            {
+                String where = label + ", row " + i + ", rank " + n;
+                if (n < expected.size())
+                {
+                    int id = expected.get(n);
+                    assertEquals(where, id, ids[n]);
+                    assertEquals(where, dot(model, i, id), scores[n], 0f);
+                }
+                else
+                {
+                    assertEquals(where, -1, ids[n]);
+                    assertTrue(where, Float.isNaN(scores[n]));
+                }
+            }
+        }
+        assertTrue(label, !buf.hasRemaining());
+    }
+
+    private static List<Integer> bruteForce(final VectorModel model,
+                                            final int row)
+    {
+        List<Integer> candidates = new ArrayList<Integer>();
+        for (int j = 0; j < model.getVocabSize(); j++)
+        {
+            if (j != row && !Float.isNaN(dot(model, row, j)))
+            {
+                candidates.add(j);
+            }
+        }
+        Collections.sort(candidates, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer a, Integer b)
+            {
+                int c = Float.compare(dot(model, row, b), dot(model, row, a));
+                return c != 0 ? c : a.compareTo(b);
+            }
+        });
+        return candidates.subList(0, Math.min(K, candidates.size()));
+    }
+
+    private static float dot(VectorModel model, int i, int j)
+    {
+        float[] u = model.getVector(i);
+        float[] v = model.getVector(j);
+        float s = 0f;
+        for (int x = 0; x < u.length; x++)
+        {
+            s += u[x] * v[x];
+        }
+        return s;
+    }
+}